@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Non-interactive execution of a SQL script : no confirmation asked, no echo of the queries, no colors.
+ * Prints a summary of the run at the end.
+ */
+public class BatchRunner {
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final SimpleDB db;
+    private final boolean pipelined;
+
+    private int statements;
+    private int failures;
+
+    public BatchRunner(SimpleDB db, boolean pipelined) {
+        this.db = db;
+        this.pipelined = pipelined;
+        db.setConfirmations(false);
+        db.setEcho(false);
+        db.setColors(false);
+    }
+
+    /**
+     * Run the statements of a script, one per line
+     *
+     * @param fileName the .sql file to run, or '-' to read the standard input
+     */
+    public void run(String fileName) throws Exception {
+        run(openScript(fileName));
+    }
+
+    /**
+     * Run the statements of a script, one per line
+     *
+     * @param script the script to run, closed at the end
+     */
+    public void run(Reader script) throws Exception {
+        long start = System.nanoTime();
+        long persistedBytesBefore = db.getPersistedBytes();
+
+        try (BufferedReader reader = new BufferedReader(script)) {
+            if (pipelined) {
+                runPipelined(reader);
+            } else {
+                String statement;
+                while ((statement = nextStatement(reader)) != null) {
+                    execute(SimpleDB.parse(statement));
+                }
+            }
+        }
+
+        // Summary
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Statements executed : " + statements);
+        System.out.println("Failures : " + failures);
+        System.out.printf("Elapsed : %.3f s (%.1f statements/s)%n", seconds, seconds > 0 ? statements / seconds : 0);
+        System.out.println("Persisted bytes : " + (db.getPersistedBytes() - persistedBytesBefore));
+    }
+
+    public int getStatements() {
+        return statements;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Read and parse the script on another thread, while the statements are executed on this one
+     */
+    private void runPipelined(BufferedReader reader) throws Exception {
+        // An empty Optional marks the end of the script
+        BlockingQueue<Optional<ParsedStatement>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Exception[] readerError = new Exception[1];
+
+        Thread readerThread = new Thread(() -> {
+            try {
+                String statement;
+                while ((statement = nextStatement(reader)) != null) {
+                    queue.put(Optional.of(SimpleDB.parse(statement)));
+                }
+            } catch (Exception e) {
+                readerError[0] = e;
+            } finally {
+                try {
+                    queue.put(Optional.empty());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "batch-reader");
+        // Does not keep the process alive if the execution stops early
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        Optional<ParsedStatement> statement;
+        while ((statement = queue.take()).isPresent()) {
+            execute(statement.get());
+        }
+        readerThread.join();
+
+        if (readerError[0] != null) {
+            throw readerError[0];
+        }
+    }
+
+    private void execute(ParsedStatement statement) {
+        statements += 1;
+        try {
+            if (!db.execute(statement)) {
+                failures += 1;
+            }
+        } catch (RuntimeException e) {
+            // Keep going, a failing statement must not stop the whole script
+            System.out.println("Statement failed : " + statement.getSql() + " : " + e);
+            failures += 1;
+        }
+    }
+
+    /**
+     * Skip empty lines and '--' comments, and remove the optional ';' at the end of the statement
+     *
+     * @return the next statement of the script, null at the end
+     */
+    static String nextStatement(BufferedReader reader) throws Exception {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.endsWith(";")) {
+                line = line.substring(0, line.length() - 1).trim();
+            }
+            if (!line.isEmpty() && !line.startsWith("--")) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private static Reader openScript(String fileName) throws Exception {
+        if (fileName.equals("-")) {
+            return new InputStreamReader(System.in);
+        }
+        return new FileReader(fileName);
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class BatchRunnerTest {
+    private static final String DB_FILE = "test";
+    private SimpleDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        File dbFile = new File(DB_FILE);
+        if (dbFile.exists()) {
+            dbFile.delete();
+        }
+        db = new SimpleDB(DB_FILE);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void testNextStatement() throws Exception {
+        BufferedReader reader = new BufferedReader(new StringReader("""
+                -- a comment
+
+                  CREATE TABLE batch (a, b) ;
+                INSERT INTO batch VALUES (1, 2)
+                   \t
+                -- the end
+                """));
+        assertEquals("CREATE TABLE batch (a, b)", BatchRunner.nextStatement(reader));
+        assertEquals("INSERT INTO batch VALUES (1, 2)", BatchRunner.nextStatement(reader));
+        assertNull(BatchRunner.nextStatement(reader));
+    }
+
+    @Test
+    public void testFailuresCounted() throws Exception {
+        BatchRunner runner = new BatchRunner(db, false);
+        runner.run(new StringReader("""
+                CREATE TABLE batch (a, b)
+                not a statement
+                SELECT * FROM missing
+                INSERT INTO batch VALUES (1, 2)
+                """));
+        assertEquals(4, runner.getStatements());
+        assertEquals(2, runner.getFailures());
+    }
+
+    @Test
+    public void testNoConfirmation() throws Exception {
+        BatchRunner runner = new BatchRunner(db, false);
+        runner.run(new StringReader("""
+                CREATE TABLE batch (a, b)
+                INSERT INTO batch VALUES (1, 2)
+                CREATE TABLE batch (a, b)
+                """));
+        assertEquals(0, runner.getFailures());
+        // Overwritten without asking
+        assertEquals(0, db.tables.get("batch").getRows().size());
+
+        runner.run(new StringReader("""
+                INSERT INTO batch VALUES (1, 2), (3, 4)
+                DELETE FROM batch
+                """));
+        assertEquals(0, runner.getFailures());
+        assertEquals(0, db.tables.get("batch").getRows().size());
+    }
+
+    @Test
+    public void testMalformedWhereKeepsRows() throws Exception {
+        BatchRunner runner = new BatchRunner(db, false);
+        runner.run(new StringReader("""
+                CREATE TABLE batch (a, b)
+                INSERT INTO batch VALUES (x, 1), (y, 2), (z, 3)
+                DELETE FROM batch WHERE a = "x"
+                DELETE FROM batch WHERE a = 'x y'
+                DELETE FROM batch WHRE a = 'x'
+                DELETE FROM batch WHERE a = 'x' OR a = 'y'
+                """));
+        assertEquals(6, runner.getStatements());
+        assertEquals(4, runner.getFailures());
+        assertEquals(3, db.tables.get("batch").getRows().size());
+    }
+
+    @Test
+    public void testPipelinedSameAsSequential() throws Exception {
+        String script = """
+                CREATE TABLE batch (a, b)
+                INSERT INTO batch VALUES (1, 2), (3, 4), (5, 6)
+                UPDATE batch SET b = '0' WHERE a = '3'
+                bogus
+                DELETE FROM batch WHERE a = '1'
+                SELECT * FROM batch
+                SELECT * FROM missing
+                """;
+
+        BatchRunner sequential = new BatchRunner(db, false);
+        sequential.run(new StringReader(script));
+        String[][] sequentialRows = db.tables.get("batch").getRows().toArray(new String[0][]);
+
+        BatchRunner pipelined = new BatchRunner(db, true);
+        pipelined.run(new StringReader(script));
+        String[][] pipelinedRows = db.tables.get("batch").getRows().toArray(new String[0][]);
+
+        assertEquals(7, sequential.getStatements());
+        assertEquals(sequential.getStatements(), pipelined.getStatements());
+        assertEquals(2, sequential.getFailures());
+        assertEquals(sequential.getFailures(), pipelined.getFailures());
+        assertArrayEquals(sequentialRows, pipelinedRows);
+        assertArrayEquals(new String[][]{{"3", "0"}, {"5", "6"}}, pipelinedRows);
+    }
+}
@@ -8,6 +8,12 @@ public class Main {
     static Scanner scanner = new Scanner(System.in);
 
     public static void main(String[] args) {
+        // Batch mode : java Main --batch <file.sql|-> [--pipelined]
+        if (args.length > 0 && args[0].equals("--batch")) {
+            batch(args);
+            return;
+        }
+
         // Welcome message
         System.out.println(ConsoleColors.WHITE_BOLD + "Welcome to SimpleDB ! A simple file-based database application developed in Java." + ConsoleColors.RESET);
 
@@ -77,6 +83,30 @@ public class Main {
                 """;
 
         Arrays.stream(demo.split("\\r?\\n")).forEach(db::executeSQL);
+        db.close();
+    }
+
+    private static void batch(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage : --batch <file.sql|-> [--pipelined]");
+            System.exit(2);
+        }
+        boolean pipelined = Arrays.asList(args).contains("--pipelined");
+
+        BatchRunner runner;
+        try (SimpleDB db = new SimpleDB("")) {
+            runner = new BatchRunner(db, pipelined);
+            runner.run(args[1]);
+        } catch (Exception e) {
+            System.out.println("Something went wrong in the batch ! :(");
+            System.out.println(e);
+            System.exit(2);
+            return;
+        }
+        // Non-zero exit code when a statement failed, for the scripts driving the batch
+        if (runner.getFailures() > 0) {
+            System.exit(1);
+        }
     }
 
     private static void cli() throws Exception {
@@ -95,6 +125,7 @@ public class Main {
                         \tUPDATE name SET column = 'newValue' WHERE condition
                         \tDELETE FROM name WHERE condition
                         \t\tWithout WHERE condition, deletes the whole table
+                        \tTRUNCATE TABLE name
                         \tSELECT * FROM name WHERE condition GROUP BY column1, ...
                         \t\tWHERE clause, GROUP BY clause are optionals
                         \t\tYou can specify columns desired by replacing '*'
@@ -102,6 +133,7 @@ public class Main {
                         """ + ConsoleColors.RESET);
                 case "exit" -> {
                     System.out.println(ConsoleColors.RED_BOLD + "Exiting..." + ConsoleColors.RESET);
+                    db.close();
                     return;
                 }
                 default -> db.executeSQL(enteredLine);
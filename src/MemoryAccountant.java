@@ -0,0 +1,65 @@
+public class MemoryAccountant {
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private final long budget;
+    private long used;
+    // Number of times rows went to the disk because of this budget
+    private int spills;
+
+    public MemoryAccountant(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Memory budget cannot be negative");
+        }
+        this.budget = budget;
+        used = 0;
+        spills = 0;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * Reserve some bytes of the budget
+     *
+     * @param bytes the amount of bytes wanted
+     * @return true if the bytes were reserved, false if it would exceed the budget
+     */
+    public boolean tryReserve(long bytes) {
+        if (used + bytes > budget) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+
+    public void release(long bytes) {
+        used = Math.max(0, used - bytes);
+    }
+
+    public void recordSpill() {
+        spills += 1;
+    }
+
+    public int getSpills() {
+        return spills;
+    }
+
+    /**
+     * Rough estimation of the heap taken by a row : array header and references, plus each String and its chars
+     *
+     * @param row the row to measure
+     * @return the estimated size in bytes
+     */
+    public static long estimateSize(String[] row) {
+        long size = 16 + 4L * row.length;
+        for (String value : row) {
+            size += 40 + 2L * value.length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,31 @@
+import java.util.regex.Matcher;
+
+/**
+ * A SQL query recognized by SimpleDB.parse, ready to be executed.
+ * The matcher holds the groups of the regex the query matched, null if the query is not recognized.
+ */
+public class ParsedStatement {
+    public enum Type {CREATE, INSERT, UPDATE, TRUNCATE, DELETE, SELECT, UNKNOWN}
+
+    private final String sql;
+    private final Type type;
+    private final Matcher matcher;
+
+    public ParsedStatement(String sql, Type type, Matcher matcher) {
+        this.sql = sql;
+        this.type = type;
+        this.matcher = matcher;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Matcher getMatcher() {
+        return matcher;
+    }
+}
@@ -0,0 +1,163 @@
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Intermediate rows of a query. Rows are kept on the heap while the memory accountant allows it,
+ * the following ones are appended to a temporary file on disk.
+ */
+public class RowBuffer implements Iterable<String[]>, AutoCloseable {
+    private final MemoryAccountant accountant;
+    // Where the temporary file is created, null for the default temporary directory
+    private final File spillDirectory;
+    private final List<String[]> rows;
+    private long reserved;
+    private int size;
+
+    private File spillFile;
+    private CSVWriter spillWriter;
+    // Readers of the spill file not read to the end yet, closed with the buffer
+    private final List<CSVReader> openReaders;
+
+    public RowBuffer(MemoryAccountant accountant) {
+        this(accountant, null);
+    }
+
+    public RowBuffer(MemoryAccountant accountant, File spillDirectory) {
+        this.accountant = accountant;
+        this.spillDirectory = spillDirectory;
+        rows = new ArrayList<>();
+        openReaders = new ArrayList<>();
+        reserved = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    public void add(String[] row) {
+        long rowSize = MemoryAccountant.estimateSize(row);
+        // Once we started to spill, everything goes to the disk to keep the order of the rows
+        if (spillWriter == null && accountant.tryReserve(rowSize)) {
+            rows.add(row);
+            reserved += rowSize;
+        } else {
+            try {
+                if (spillWriter == null) {
+                    spillFile = File.createTempFile("simpledb-", ".spill", spillDirectory);
+                    accountant.recordSpill();
+                    spillWriter = new CSVWriter(new FileWriter(spillFile));
+                }
+                spillWriter.writeNext(row);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        size += 1;
+    }
+
+    /**
+     * Iterate over the rows in memory, and then over the rows spilled to the disk
+     */
+    @Override
+    public Iterator<String[]> iterator() {
+        if (spillWriter == null) {
+            return rows.iterator();
+        }
+
+        CSVReader spillReader;
+        try {
+            spillWriter.flush();
+            spillReader = new CSVReader(new FileReader(spillFile));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        openReaders.add(spillReader);
+
+        Iterator<String[]> memoryIterator = rows.iterator();
+        return new Iterator<>() {
+            private String[] next = readNext();
+
+            private String[] readNext() {
+                if (memoryIterator.hasNext()) {
+                    return memoryIterator.next();
+                }
+                try {
+                    String[] row = spillReader.readNext();
+                    if (row == null) {
+                        openReaders.remove(spillReader);
+                        spillReader.close();
+                    }
+                    return row;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String[] next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String[] row = next;
+                next = readNext();
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Give back the memory to the accountant, close the readers left open and delete the temporary file.
+     * Can be called more than once.
+     */
+    @Override
+    public void close() {
+        accountant.release(reserved);
+        reserved = 0;
+        rows.clear();
+        if (spillWriter == null) {
+            return;
+        }
+
+        Exception error = null;
+        List<Closeable> toClose = new ArrayList<>(openReaders);
+        toClose.add(spillWriter);
+        for (Closeable closeable : toClose) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        openReaders.clear();
+        spillFile.delete();
+        spillWriter = null;
+        spillFile = null;
+
+        if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }
+}
@@ -1,79 +1,210 @@
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.IntStream;
 
-public class SimpleDB {
+public class SimpleDB implements AutoCloseable {
     //region REGEX
     private static final String CREATE_TABLE_REGEX = "CREATE TABLE (\\w+) \\(([\\w, ]+)\\)";
     private static final String INSERT_REGEX = "INSERT INTO (\\w+) VALUES ((\\(([\\w ,']+)\\),* *)+)";
     private static final String UPDATE_REGEX = "UPDATE (\\w+) SET (((\\w+) ?= ?'([\\w ]+)' *,* *)+).*";
     private static final String DELETE_REGEX = "DELETE FROM (\\w+)(.*)";
+    private static final String TRUNCATE_REGEX = "TRUNCATE (?:TABLE )?(\\w+)";
     private static final String SELECT_REGEX = "SELECT ([\\w, ]+|\\*) FROM (.+) ?(?:(WHERE)|(GROUP BY))?";
     private static final String WHERE_REGEX = "WHERE ((?:\\w+ ?= ?'\\w+' *(?:AND)* *)+)";
     private static final String GROUP_REGEX = "GROUP BY ((?:\\w+ *,* *)+)";
     private static final String TRIM_REGEX = "^[( '\"]+|[) '\"]+$";
+
+    // Checked in this order by parse()
+    private static final Map<ParsedStatement.Type, Pattern> STATEMENT_PATTERNS = new LinkedHashMap<>();
+    static {
+        STATEMENT_PATTERNS.put(ParsedStatement.Type.CREATE, Pattern.compile(CREATE_TABLE_REGEX));
+        STATEMENT_PATTERNS.put(ParsedStatement.Type.INSERT, Pattern.compile(INSERT_REGEX));
+        STATEMENT_PATTERNS.put(ParsedStatement.Type.UPDATE, Pattern.compile(UPDATE_REGEX));
+        STATEMENT_PATTERNS.put(ParsedStatement.Type.TRUNCATE, Pattern.compile(TRUNCATE_REGEX));
+        STATEMENT_PATTERNS.put(ParsedStatement.Type.DELETE, Pattern.compile(DELETE_REGEX));
+        STATEMENT_PATTERNS.put(ParsedStatement.Type.SELECT, Pattern.compile(SELECT_REGEX));
+    }
     //endregion
 
+    // Number of files a GROUP BY spills into, and how many times a partition can be split again
+    private static final int SPILL_PARTITIONS = 8;
+    private static final int MAX_SPILL_LEVEL = 8;
+
     Map<String, Table> tables;
+    // Memory allowed to the intermediate rows of one query, in bytes
+    private long memoryBudget;
+    private MemoryAccountant accountant;
+    // Ask the user before overwriting or emptying a table, and print back each query
+    private boolean confirmations;
+    private boolean echo;
+    // Use ANSI colors in the output
+    private boolean colors;
+    // Size of the CSV files written since the database was opened
+    private long persistedBytes;
+    // Where the queries spill their rows, null for the default temporary directory
+    private File spillDirectory;
+    // Number of times rows of the queries went to the disk
+    private long spills;
+    // Part of deleted rows in a table above which it gets compacted in the background
+    private volatile double compactionThreshold;
+    private final ExecutorService compactor;
 
     public SimpleDB(String folderName) throws Exception {
         tables = new HashMap<>();
+        String budget = System.getProperty("simpledb.memoryBudget", String.valueOf(MemoryAccountant.DEFAULT_BUDGET));
+        try {
+            setMemoryBudget(Long.parseLong(budget));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid simpledb.memoryBudget : " + budget);
+        }
+        confirmations = true;
+        echo = true;
+        colors = true;
+        persistedBytes = 0;
+        String directory = System.getProperty("simpledb.spillDirectory");
+        spillDirectory = directory == null ? null : new File(directory);
+        spills = 0;
+        String threshold = System.getProperty("simpledb.compactionThreshold", "0.3");
+        try {
+            setCompactionThreshold(Double.parseDouble(threshold));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid simpledb.compactionThreshold : " + threshold);
+        }
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "table-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
         // Load existing tables from file
         loadFromFile(folderName);
     }
 
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget cannot be negative");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void setConfirmations(boolean confirmations) {
+        this.confirmations = confirmations;
+    }
+
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    public void setColors(boolean colors) {
+        this.colors = colors;
+    }
+
+    public long getPersistedBytes() {
+        return persistedBytes;
+    }
+
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getSpills() {
+        return spills;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        if (compactionThreshold < 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("Compaction threshold must be between 0 and 1");
+        }
+        this.compactionThreshold = compactionThreshold;
+    }
+
     /** execute a SQL query
      * @param sql the SQL query to execute
+     * @return true if the query was executed, false if it was invalid or canceled
      */
-    public void executeSQL(String sql) {
-        System.out.println("You typed : " + ConsoleColors.GREEN + sql + ConsoleColors.RESET);
-        sql = sql.trim();
-        try {
-            // Create table
-            if (sql.matches(CREATE_TABLE_REGEX)) {
-                handleCreate(sql);
-            }
-            // Insert row
-            else if (sql.matches(INSERT_REGEX)) {
-                handleInsert(sql);
-            }
-            // Update row
-            else if (sql.matches(UPDATE_REGEX)) {
-                handleUpdate(sql);
-            }
-            // Delete row
-            else if (sql.matches(DELETE_REGEX)) {
-                handleDelete(sql);
+    public boolean executeSQL(String sql) {
+        return execute(parse(sql));
+    }
+
+    /**
+     * Recognize the type of query. Only uses the regex, so it can be done on another thread than the execution
+     *
+     * @param sql the SQL query to parse
+     * @return the parsed query, of type UNKNOWN if no regex matches
+     */
+    public static ParsedStatement parse(String sql) {
+        String trimmed = sql.trim();
+        for (Map.Entry<ParsedStatement.Type, Pattern> statement : STATEMENT_PATTERNS.entrySet()) {
+            Matcher m = statement.getValue().matcher(trimmed);
+            if (m.matches()) {
+                return new ParsedStatement(sql, statement.getKey(), m);
             }
-            // Select rows
-            else if (sql.matches(SELECT_REGEX)) {
-                handleSelect(sql);
-            } else {
-                System.out.println(ConsoleColors.RED +  "Statement not recognized" + ConsoleColors.RESET);
+        }
+        return new ParsedStatement(sql, ParsedStatement.Type.UNKNOWN, null);
+    }
+
+    /** execute a parsed SQL query
+     * @param statement the query to execute, from parse()
+     * @return true if the query was executed, false if it was invalid or canceled
+     */
+    public synchronized boolean execute(ParsedStatement statement) {
+        if (echo) {
+            System.out.println("You typed : " + color(ConsoleColors.GREEN) + statement.getSql() + color(ConsoleColors.RESET));
+        }
+        // Each query gets its own memory budget
+        accountant = new MemoryAccountant(memoryBudget);
+        boolean executed = false;
+        Matcher m = statement.getMatcher();
+        try {
+            switch (statement.getType()) {
+                case CREATE -> handleCreate(m);
+                case INSERT -> handleInsert(m);
+                case UPDATE -> handleUpdate(m);
+                case TRUNCATE -> handleTruncate(m);
+                case DELETE -> handleDelete(m);
+                case SELECT -> handleSelect(m);
+                case UNKNOWN -> {
+                    System.out.println(color(ConsoleColors.RED) +  "Statement not recognized" + color(ConsoleColors.RESET));
+                    System.out.println();
+                    return false;
+                }
             }
+            executed = true;
         } catch (CancellationException e) {
             System.out.println(e.getMessage());
         } catch (IllegalArgumentException e) {
-            System.out.println(ConsoleColors.RED_BOLD +  "Your prompt is invalid : " + ConsoleColors.RED + e.getMessage() + ConsoleColors.RESET);
+            System.out.println(color(ConsoleColors.RED_BOLD) +  "Your prompt is invalid : " + color(ConsoleColors.RED) + e.getMessage() + color(ConsoleColors.RESET));
         } catch (NullPointerException e) {
             System.out.println("This table does not exist");
+        } finally {
+            spills += accountant.getSpills();
         }
         System.out.println();
+        return executed;
+    }
+
+    private String color(String code) {
+        return colors ? code : "";
     }
 
     //region TRIVIAL HANDLES
     /**
      * Table creation, with overwrite check and confirmation
      *
-     * @param sql valid CREATE sql query
+     * @param m matcher of a valid CREATE sql query
      */
-    private void handleCreate(String sql) {
+    private void handleCreate(Matcher m) {
         // Parse table name and column names from SQL
-        Matcher m = Pattern.compile(CREATE_TABLE_REGEX).matcher(sql);
-        m.find();
         String tableName = m.group(1);
         String[] columnNames = m.group(2).split(",");
 
@@ -81,7 +212,7 @@ public class SimpleDB {
         columnNames = Arrays.stream(columnNames).map(String::trim).toArray(String[]::new);
 
         // Overwrite check and validation by user
-        if (tables.containsKey(tableName)) {
+        if (confirmations && tables.containsKey(tableName)) {
             System.out.println("This table already exists. This command will overwrite the existing table. Do you agree ?");
             if (Main.userCancellation()) {
                 throw new CancellationException("Creation of table canceled by user");
@@ -100,12 +231,10 @@ public class SimpleDB {
     /**
      * Insert into a table a UNIQUE line of values
      *
-     * @param sql valid INSERT INTO sql query
+     * @param m matcher of a valid INSERT INTO sql query
      */
-    private void handleInsert(String sql) {
+    private void handleInsert(Matcher m) {
         // Parse table name and values from SQL
-        Matcher m = Pattern.compile(INSERT_REGEX).matcher(sql);
-        m.find();
         String tableName = m.group(1);
         String[] values = m.group(2).split("\\), *\\(");
         String[] singleValue;
@@ -130,12 +259,10 @@ public class SimpleDB {
     /**
      * Update the table
      *
-     * @param sql a valid UPDATE query
+     * @param m matcher of a valid UPDATE query
      */
-    private void handleUpdate(String sql) {
+    private void handleUpdate(Matcher m) {
         // Parse table name, column name, value, and WHERE clause from SQL
-        Matcher m = Pattern.compile(UPDATE_REGEX).matcher(sql);
-        m.find();
         String tableName = m.group(1);
         String[] updates = m.group(2).split(",");
 
@@ -146,14 +273,13 @@ public class SimpleDB {
         // Get the table
         Table table = tables.get(tableName);
 
-        // Handle the WHERE clause
-        List<String[]> rows = handleWhere(sql, table);
-
-        // Update rows in table
-        if (table.update(rows, updateColumns, updateValues)) {
-            System.out.println(rows.size() + " row(s) updated");
-        } else {
-            System.out.println("0 row updated");
+        // Handle the WHERE clause, and update rows in table
+        try (RowBuffer rows = handleWhere(m.group(0), table.getRows(), table)) {
+            if (table.update(rows, updateColumns, updateValues)) {
+                System.out.println(rows.size() + " row(s) updated");
+            } else {
+                System.out.println("0 row updated");
+            }
         }
 
         onExecutionSaving(tableName);
@@ -162,55 +288,91 @@ public class SimpleDB {
     /**
      * Delete element matching the WHERE condition. If no WHERE condition, delete everything
      *
-     * @param sql valid DELETE FROM query
+     * @param m matcher of a valid DELETE FROM query
      */
-    private void handleDelete(String sql) {
+    private void handleDelete(Matcher m) {
         // Parse table name and WHERE clause from SQL
-        Matcher m = Pattern.compile(DELETE_REGEX).matcher(sql);
-        m.find();
         String tableName = m.group(1);
         String whereSQL = m.group(2);
 
         // Get table
         Table table = tables.get(tableName);
 
-        List<String[]> selectedRows;
-        // Delete everything ?
-        if (Pattern.compile(WHERE_REGEX).matcher(whereSQL).find()) {
-            // Select the line according to conditions
-            selectedRows = handleWhere(whereSQL, table);
+        // Delete everything ? Only without any clause, a WHERE badly written must not empty the table
+        if (!whereSQL.isBlank()) {
+            if (!whereSQL.trim().matches(WHERE_REGEX)) {
+                throw new IllegalArgumentException("The WHERE condition is badly written : " + whereSQL.trim());
+            }
+            // Mark the rows matching the conditions as deleted, while scanning the table
+            int deleted = table.deleteWhere(whereCondition(whereSQL, table));
+            if (deleted > 0) {
+                System.out.println(deleted + " row(s) deleted");
+            } else {
+                System.out.println("0 row deleted");
+            }
         }
         else {
             // Ask for confirmation
-            System.out.println(ConsoleColors.RED + "You are about to delete the whole " + tableName + " table." + ConsoleColors.RESET);
-            if (Main.userCancellation()) {
-                throw new CancellationException("Canceled deletion of the whole table.");
+            if (confirmations) {
+                System.out.println(color(ConsoleColors.RED) + "You are about to delete the whole " + tableName + " table." + color(ConsoleColors.RESET));
+                if (Main.userCancellation()) {
+                    throw new CancellationException("Canceled deletion of the whole table.");
+                }
             }
-            selectedRows = table.getRows();
-
+            int deleted = table.getRows().size();
+            table.truncate();
+            System.out.println(deleted + " row(s) deleted");
         }
 
-
-        // Delete rows from table
-        if (table.deleteRows(selectedRows)) {
-            System.out.println(selectedRows.size() + " row(s) deleted");
-        } else {
-            System.out.println("0 row deleted");
-        }
+        scheduleCompaction(table);
 
         // Saving
         onExecutionSaving(tableName);
     }
 
+    /**
+     * Delete every row of a table at once, without confirmation
+     *
+     * @param m matcher of a valid TRUNCATE query
+     */
+    private void handleTruncate(Matcher m) {
+        String tableName = m.group(1);
+
+        Table table = tables.get(tableName);
+        int deleted = table.getRows().size();
+        table.truncate();
+        System.out.println(deleted + " row(s) deleted");
+
+        onExecutionSaving(tableName);
+    }
+
+    /**
+     * Compact the table on the compactor thread if it has too many deleted rows.
+     * The compaction waits for the current query to end, as it locks the database too.
+     *
+     * @param table the table rows were deleted from
+     */
+    private void scheduleCompaction(Table table) {
+        if (compactor.isShutdown() || table.getTombstoneRatio() <= compactionThreshold) {
+            return;
+        }
+        compactor.execute(() -> {
+            synchronized (this) {
+                // Another compaction may already have been done
+                if (table.getTombstoneRatio() > compactionThreshold) {
+                    table.compact();
+                }
+            }
+        });
+    }
+
     /**
      * Print the result of your query
      *
-     * @param sql a SELECT query
+     * @param m matcher of a SELECT query
      */
-    private void handleSelect(String sql) {
+    private void handleSelect(Matcher m) {
         // Extract selected columns from the sql
-        Matcher m = Pattern.compile(SELECT_REGEX).matcher(sql);
-        m.find();
         String columnsString = m.group(1);
         String otherPart = m.group(2);
 
@@ -220,62 +382,99 @@ public class SimpleDB {
 
         // Get table, CROSS JOIN aware
         Table table;
-        if (tableName.split(",").length > 1) {
-            // CROSS JOIN
-            table = handleCrossJoin(tableName);
-        } else {
-            table = tables.get(tableName.replaceAll(TRIM_REGEX, ""));
-        }
+        RowBuffer joinedRows = null;
+        RowBuffer filteredRows = null;
+        RowBuffer groupedRows = null;
+        try {
+            Iterable<String[]> rows;
+            if (tableName.split(",").length > 1) {
+                // CROSS JOIN
+                joinedRows = new RowBuffer(accountant, spillDirectory);
+                table = handleCrossJoin(tableName, joinedRows);
+                rows = joinedRows;
+            } else {
+                table = tables.get(tableName.replaceAll(TRIM_REGEX, ""));
+                rows = table.getRows();
+            }
 
-        // Select rows if WHERE condition
-        List<String[]> rows;
-        if (Pattern.compile(WHERE_REGEX).matcher(otherPart).find()) {
-            rows = handleWhere(otherPart, table);
-        } else {
-            rows = table.getRows();
-        }
+            // Select rows if WHERE condition
+            if (Pattern.compile(WHERE_REGEX).matcher(otherPart).find()) {
+                filteredRows = handleWhere(otherPart, rows, table);
+                rows = filteredRows;
+            }
 
-        // GROUP BY
-        if (Pattern.compile(GROUP_REGEX).matcher(otherPart).find()) {
-            rows = handleGroupBy(otherPart, rows, table);
-        }
+            // GROUP BY
+            if (Pattern.compile(GROUP_REGEX).matcher(otherPart).find()) {
+                groupedRows = handleGroupBy(otherPart, rows, table);
+                rows = groupedRows;
+            }
 
-        // Extract columns indexes if not *
-        int[] columnsIndex;
-        if (columnsString.equals("*")) {
-            columnsIndex = IntStream.range(0, table.getColumns().length).toArray();
-        } else {
-            String[] columns = Arrays.stream(columnsString.split(",")).map(c -> c.replaceAll(TRIM_REGEX, "")).toArray(String[]::new);
-            columnsIndex = table.getColumnsIndex(columns);
+            // Extract columns indexes if not *
+            int[] columnsIndex;
+            if (columnsString.equals("*")) {
+                columnsIndex = IntStream.range(0, table.getColumns().length).toArray();
+            } else {
+                String[] columns = Arrays.stream(columnsString.split(",")).map(c -> c.replaceAll(TRIM_REGEX, "")).toArray(String[]::new);
+                columnsIndex = table.getColumnsIndex(columns);
+            }
+
+            // Print the table
+            System.out.println(color(ConsoleColors.WHITE_BACKGROUND + ConsoleColors.BLUE) + joinColumns(table.getColumns(), columnsIndex) + color(ConsoleColors.RESET));
+            System.out.print(color(ConsoleColors.BLACK_BACKGROUND));
+            // Rows
+            for (String[] row : rows) {
+                System.out.println(joinColumns(row, columnsIndex));
+            }
+            System.out.print(color(ConsoleColors.RESET));
+        } finally {
+            // Free the memory and the temporary files of the query
+            closeAll(joinedRows, filteredRows, groupedRows);
         }
+    }
 
-        // Print the table
-        String[] col = table.getColumns();
-        System.out.printf(ConsoleColors.WHITE_BACKGROUND + ConsoleColors.BLUE);
+    /**
+     * @return the values at the given indexes, separated by commas
+     */
+    private static String joinColumns(String[] row, int[] columnsIndex) {
+        StringJoiner joiner = new StringJoiner(", ");
         for (int index : columnsIndex) {
-            System.out.printf(col[index] + ", ");
+            joiner.add(row[index]);
         }
-        System.out.print(ConsoleColors.RESET + "\b\b  \n" + ConsoleColors.BLACK_BACKGROUND);
-        // Rows
+        return joiner.toString();
+    }
+    //endregion
+
+    //region FILTERING handles
+    /**
+     * extract the lines according to the query from the rows
+     *
+     * @param sql   sql query with the WHERE
+     * @param rows  the rows to extract lines from
+     * @param table the table the rows come from, for the columns
+     * @return the line filtered from the rows according to the conditions, spilled to disk if over the memory budget
+     */
+    private RowBuffer handleWhere(String sql, Iterable<String[]> rows, Table table) {
+        Predicate<String[]> condition = whereCondition(sql, table);
+
+        // Do the actual filtering
+        RowBuffer filteredRows = new RowBuffer(accountant, spillDirectory);
         for (String[] row : rows) {
-            for (int index : columnsIndex) {
-                System.out.printf(row[index] + ", ");
+            if (condition.test(row)) {
+                filteredRows.add(row.clone());
             }
-            System.out.print("\b\b  \n");
         }
-        System.out.printf(ConsoleColors.RESET);
+
+        return filteredRows;
     }
-    //endregion
 
-    //region FILTERING handles
     /**
-     * extract the lines according to the query from the table<
+     * Build the condition of the WHERE clause
      *
      * @param sql   sql query with the WHERE
-     * @param table the table to extract lines from
-     * @return the line filtered from the table according to the conditions
+     * @param table the table the condition applies to, for the columns
+     * @return true for the rows matching every condition
      */
-    private List<String[]> handleWhere(String sql, Table table) {
+    private Predicate<String[]> whereCondition(String sql, Table table) {
         // Extract conditions in a List of String[]
         String[] conditionsString = Pattern.compile(WHERE_REGEX).matcher(sql).results().map(ma -> ma.group(1)).findFirst().orElse("").split("AND");
         List<String[]> conditions = new ArrayList<>();
@@ -292,27 +491,18 @@ public class SimpleDB {
         String[] columns = conditions.stream().map(c -> c[0]).toArray(String[]::new);
         int[] columnsIndex = table.getColumnsIndex(columns);
 
-        // Do the actual filtering
-        List<String[]> filteredRows = new ArrayList<>();
-        for (String[] row : table.getRows()) {
-            boolean isValid = true;
+        return row -> {
             for (int i = 0; i < columnsIndex.length; i++) {
                 if (!row[columnsIndex[i]].equals(conditions.get(i)[1])) {
-                    isValid = false;
-                    break;
+                    return false;
                 }
             }
-            if (isValid) {
-                filteredRows.add(row.clone());
-            }
-
-        }
-
-        return filteredRows;
+            return true;
+        };
     }
 
-    private List<String[]> handleGroupBy(String sql, List<String[]> rows, Table table) {
-        List<String[]> resultRows = new ArrayList<>();
+    private RowBuffer handleGroupBy(String sql, Iterable<String[]> rows, Table table) {
+        RowBuffer resultRows = new RowBuffer(accountant, spillDirectory);
 
         Matcher m = Pattern.compile(GROUP_REGEX).matcher(sql);
         m.find();
@@ -322,50 +512,148 @@ public class SimpleDB {
         String[] columns = Arrays.stream(columnsString.split(",")).map(c -> c.replaceAll(TRIM_REGEX, "")).toArray(String[]::new);
         int[] columnsIndex = table.getColumnsIndex(columns);
 
+        groupRows(rows, columnsIndex, resultRows, 0);
+
+        return resultRows;
+    }
+
+    /**
+     * Keep the first row of each group. Groups are kept in a hash table while the memory budget allows it,
+     * rows of new groups are then partitioned to disk, and each partition is grouped on its own
+     *
+     * @param rows         the rows to group
+     * @param columnsIndex the indexes of the GROUP BY columns
+     * @param resultRows   where to add the first row of each group
+     * @param level        how many times these rows have already been partitioned
+     */
+    private void groupRows(Iterable<String[]> rows, int[] columnsIndex, RowBuffer resultRows, int level) {
+        Set<List<String>> encountered = new HashSet<>();
+        long reserved = 0;
+        RowBuffer[] partitions = null;
+
         // Loop over each row to determine if it's a 'repeated' one or a new one
-        List<String[]> encountered = new ArrayList<>();
         for (String[] row : rows) {
-            List<String> rowSelectedColumn = new ArrayList<>();
-            for (int index : columnsIndex) {
-                rowSelectedColumn.add(row[index]);
+            String[] rowSelectedColumnArray = new String[columnsIndex.length];
+            for (int i = 0; i < columnsIndex.length; i++) {
+                rowSelectedColumnArray[i] = row[columnsIndex[i]];
+            }
+            List<String> key = List.of(rowSelectedColumnArray);
+            if (encountered.contains(key)) {
+                continue;
             }
-            String[] rowSelectedColumnArray = rowSelectedColumn.toArray(String[]::new);
-            if (encountered.stream().noneMatch(c -> Table.equalsRow(c, rowSelectedColumnArray))) {
+
+            long keySize = MemoryAccountant.estimateSize(rowSelectedColumnArray);
+            // The last level ignores the budget, a partition that can't be split anymore has to be done in memory
+            if (partitions == null && (level == MAX_SPILL_LEVEL || accountant.tryReserve(keySize))) {
+                reserved += level == MAX_SPILL_LEVEL ? 0 : keySize;
+                encountered.add(key);
                 resultRows.add(row.clone());
-                encountered.add(rowSelectedColumnArray);
+            } else {
+                if (partitions == null) {
+                    accountant.recordSpill();
+                    partitions = new RowBuffer[SPILL_PARTITIONS];
+                    for (int i = 0; i < SPILL_PARTITIONS; i++) {
+                        // No budget : the partitions are written straight to the disk
+                        partitions[i] = new RowBuffer(new MemoryAccountant(0), spillDirectory);
+                    }
+                }
+                partitions[partitionOf(key, level)].add(row);
             }
         }
 
-        return resultRows;
+        // Free the hash table before going through the partitions
+        accountant.release(reserved);
+        encountered.clear();
+
+        if (partitions != null) {
+            for (RowBuffer partition : partitions) {
+                try (partition) {
+                    groupRows(partition, columnsIndex, resultRows, level + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Every level uses other bits of the hash, so a partition too big is split differently the next time
+     */
+    private static int partitionOf(List<String> key, int level) {
+        int h = key.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return Integer.rotateRight(h, level * 3) & (SPILL_PARTITIONS - 1);
     }
     //endregion
-    private Table handleCrossJoin(String namesString) {
+
+    /**
+     * CROSS JOIN of multiple tables. Rows are written in the given buffer, spilled to disk if over the memory budget
+     *
+     * @param namesString the names of the tables, separated by commas
+     * @param products    the buffer receiving the joined rows
+     * @return an empty table holding the columns of the joined rows
+     */
+    private Table handleCrossJoin(String namesString, RowBuffer products) {
         List<String> columns = new ArrayList<>();
         List<String> tablesName = Arrays.stream(namesString.split(",")).map(c -> c.replaceAll(TRIM_REGEX, "")).toList();
         for (String t : tablesName) {
             columns.addAll(List.of(tables.get(t).getColumns()));
         }
 
-        Table joinedTable = new Table(columns.toArray(new String[0]));
-        List<String[]> products = tables.get(tablesName.get(0)).getRows();
-        ArrayList<String[]> newProducts = new ArrayList<>();
-        for (int i = 1; i < tablesName.size(); i++) {
-            for (String[] oldRow : products) {
-                for (String[] row : tables.get(tablesName.get(i)).getRows()) {
-                    String[] concatenatedArray = Arrays.copyOf(oldRow, oldRow.length + row.length);
-                    System.arraycopy(row, 0, concatenatedArray, oldRow.length, row.length);
-                    newProducts.add(concatenatedArray);
+        // Build the product one table at a time, each step reading the previous one.
+        // The intermediate products are closed even if the join fails
+        Iterable<String[]> oldProducts = tables.get(tablesName.get(0)).getRows();
+        RowBuffer previousProducts = null;
+        RowBuffer currentProducts = null;
+        try {
+            for (int i = 1; i < tablesName.size(); i++) {
+                if (i < tablesName.size() - 1) {
+                    currentProducts = new RowBuffer(accountant, spillDirectory);
+                }
+                RowBuffer target = currentProducts != null ? currentProducts : products;
+                for (String[] oldRow : oldProducts) {
+                    for (String[] row : tables.get(tablesName.get(i)).getRows()) {
+                        String[] concatenatedArray = Arrays.copyOf(oldRow, oldRow.length + row.length);
+                        System.arraycopy(row, 0, concatenatedArray, oldRow.length, row.length);
+                        target.add(concatenatedArray);
+                    }
                 }
+                closeAll(previousProducts);
+                previousProducts = currentProducts;
+                currentProducts = null;
+                oldProducts = target;
             }
-            products = (List<String[]>) newProducts.clone();
-            newProducts.clear();
+        } finally {
+            closeAll(previousProducts, currentProducts);
         }
 
-        for (String[] row : products) {
-            joinedTable.insert(row);
-        }
+        return new Table(columns.toArray(new String[0]));
+    }
 
-        return joinedTable;
+    /**
+     * Close every buffer, even if closing one of them fails
+     *
+     * @param buffers the buffers to close, null ones are skipped
+     */
+    private static void closeAll(RowBuffer... buffers) {
+        RuntimeException error = null;
+        for (RowBuffer buffer : buffers) {
+            if (buffer == null) {
+                continue;
+            }
+            try {
+                buffer.close();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
     }
 
     //region FILE READ/WRITE
@@ -386,9 +674,25 @@ public class SimpleDB {
         try {
             if (!tables.get(tableName).saveToCSV(tableName + ".csv"))
                 System.out.println("Something went wrong while saving table " + tableName);
+            persistedBytes += new File(tableName + ".csv").length();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
     //endregion
+
+    /**
+     * Stop the compactor thread, once the compactions already scheduled are done
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Compaction of the tables still running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
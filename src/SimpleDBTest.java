@@ -1,13 +1,24 @@
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
 public class SimpleDBTest {
     private static final String DB_FILE = "test";
     private SimpleDB db;
+    // Spill files of this test only, not shared with other processes
+    private File spillDirectory;
 
     @Before
     public void setUp() throws Exception {
@@ -17,6 +28,20 @@ public class SimpleDBTest {
             dbFile.delete();
         }
         db = new SimpleDB(DB_FILE);
+        spillDirectory = Files.createTempDirectory("simpledb-test").toFile();
+        db.setSpillDirectory(spillDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        File[] files = spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDirectory.delete();
     }
 
     @Test
@@ -28,4 +53,213 @@ public class SimpleDBTest {
         assertArrayEquals(new String[]{"col1", "col2"}, table.getColumns());
         assertEquals(0, table.getRows().size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDeleteRows(){
+        // No background compaction, the table is checked right after the DELETE
+        db.setCompactionThreshold(1);
+        db.executeSQL("CREATE TABLE test (col1, col2)");
+        db.executeSQL("INSERT INTO test VALUES (a, 1), (b, 2), (a, 3)");
+        db.executeSQL("DELETE FROM test WHERE col1 = 'a'");
+        Table table = db.tables.get("test");
+        assertEquals(1, table.getRows().size());
+        assertArrayEquals(new String[]{"b", "2"}, table.getRows().get(0));
+    }
+
+    @Test
+    public void testDeleteWhere(){
+        Table table = new Table(new String[]{"col1", "col2"});
+        for (int i = 0; i < 10; i++) {
+            table.insert(new String[]{String.valueOf(i % 3), String.valueOf(i)});
+        }
+        assertEquals(4, table.deleteWhere(row -> row[0].equals("0")));
+        // Rows already deleted are not counted twice
+        assertEquals(0, table.deleteWhere(row -> row[0].equals("0")));
+        assertEquals(4, table.getDeletedCount());
+        assertEquals(6, table.getRows().size());
+    }
+
+    @Test
+    public void testCompact(){
+        Table table = new Table(new String[]{"col1"});
+        table.insert(new String[]{"a"});
+        table.insert(new String[]{"b"});
+        table.insert(new String[]{"c"});
+        assertTrue(table.deleteRow(new String[]{"b"}));
+        assertEquals(1, table.getDeletedCount());
+        table.compact();
+        assertEquals(0, table.getDeletedCount());
+        assertEquals(2, table.getRows().size());
+        assertArrayEquals(new String[]{"c"}, table.getRows().get(1));
+    }
+
+    @Test
+    public void testGetRowsSkipsDeleted(){
+        Table table = new Table(new String[]{"col1"});
+        for (int i = 0; i < 10; i++) {
+            table.insert(new String[]{String.valueOf(i)});
+        }
+        table.deleteRows(List.of(new String[]{"0"}, new String[]{"4"}, new String[]{"9"}));
+        List<String[]> rows = table.getRows();
+        assertEquals(7, rows.size());
+        assertArrayEquals(new String[]{"1"}, rows.get(0));
+        assertArrayEquals(new String[]{"5"}, rows.get(3));
+        assertArrayEquals(new String[]{"8"}, rows.get(6));
+        int i = 0;
+        for (String[] row : rows) {
+            assertArrayEquals(rows.get(i++), row);
+        }
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        db.setCompactionThreshold(0.5);
+        db.executeSQL("CREATE TABLE test (col1, col2)");
+        db.executeSQL("INSERT INTO test VALUES (a, 1), (b, 2), (a, 3), (c, 4)");
+        db.executeSQL("DELETE FROM test WHERE col1 = 'a'");
+        Table table = db.tables.get("test");
+        assertEquals(2, table.getDeletedCount());
+        db.executeSQL("DELETE FROM test WHERE col1 = 'b'");
+        // Wait for the compactor
+        db.close();
+        assertEquals(0, table.getDeletedCount());
+        assertEquals(1, table.getRows().size());
+        assertArrayEquals(new String[]{"c", "4"}, table.getRows().get(0));
+    }
+
+    @Test
+    public void testTruncate(){
+        db.executeSQL("CREATE TABLE test (col1, col2)");
+        db.executeSQL("INSERT INTO test VALUES (a, 1), (b, 2)");
+        db.executeSQL("TRUNCATE TABLE test");
+        assertEquals(0, db.tables.get("test").getRows().size());
+    }
+
+    @Test
+    public void testRowBufferSpill(){
+        // Room for about two rows in memory
+        MemoryAccountant accountant = new MemoryAccountant(250);
+        List<String[]> expected = List.of(
+                new String[]{"a", "b"},
+                new String[]{"c", "d"},
+                new String[]{"with, comma", "e"},
+                new String[]{"say \"hi\"", ""},
+                new String[]{"\"", ","},
+                new String[]{"f", "g"});
+
+        try (RowBuffer buffer = new RowBuffer(accountant, spillDirectory)) {
+            for (String[] row : expected) {
+                buffer.add(row.clone());
+            }
+            assertTrue(buffer.isSpilled());
+            assertEquals(1, accountant.getSpills());
+            assertEquals(expected.size(), buffer.size());
+            assertEquals(1, countSpillFiles());
+
+            // Read back twice, in order and unchanged
+            for (int pass = 0; pass < 2; pass++) {
+                List<String[]> read = new ArrayList<>();
+                buffer.forEach(read::add);
+                assertEquals(expected.size(), read.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertArrayEquals(expected.get(i), read.get(i));
+                }
+            }
+
+            // An iterator left before the end is closed with the buffer
+            Iterator<String[]> iterator = buffer.iterator();
+            for (int i = 0; i < 3; i++) {
+                iterator.next();
+            }
+        }
+        assertEquals(0, accountant.getUsed());
+        assertEquals(0, countSpillFiles());
+    }
+
+    @Test
+    public void testGroupByOverBudget(){
+        db.setEcho(false);
+        db.setColors(false);
+        db.executeSQL("CREATE TABLE test (name, age)");
+        Set<String> groups = new HashSet<>();
+        for (int i = 0; i < 12; i++) {
+            StringBuilder insert = new StringBuilder("INSERT INTO test VALUES ");
+            for (int j = 0; j < 10; j++) {
+                insert.append(j > 0 ? ", " : "").append("(n").append((i * 10 + j) % 40).append(", ").append(i).append(")");
+                groups.add("n" + (i * 10 + j) % 40);
+            }
+            db.executeSQL(insert.toString());
+        }
+
+        // Only a few groups fit in memory
+        db.setMemoryBudget(1000);
+        long spillsBefore = db.getSpills();
+        List<String> rows = select("SELECT name FROM test GROUP BY name");
+        assertEquals(groups.size(), rows.size());
+        assertEquals(groups, new HashSet<>(rows));
+        // The result buffer spills once, so more than one spill means the groups were partitioned to disk
+        assertTrue(db.getSpills() - spillsBefore > 1);
+        assertEquals(0, countSpillFiles());
+    }
+
+    @Test
+    public void testCrossJoinAndWhereOverBudget(){
+        db.setEcho(false);
+        db.setColors(false);
+        db.executeSQL("CREATE TABLE test (a)");
+        db.executeSQL("INSERT INTO test VALUES (a1), (a2), (a3), (a4)");
+        db.executeSQL("CREATE TABLE test2 (b, c)");
+        db.executeSQL("INSERT INTO test2 VALUES (b1, x), (b2, y), (b3, x)");
+        db.executeSQL("CREATE TABLE test3 (d)");
+        db.executeSQL("INSERT INTO test3 VALUES (d1), (d2), (d3)");
+        String[] queries = {
+                "SELECT * FROM test, test2, test3",
+                "SELECT * FROM test, test2, test3 WHERE c = 'x'",
+                "SELECT b FROM test2 WHERE c = 'x'"
+        };
+
+        for (String query : queries) {
+            db.setMemoryBudget(MemoryAccountant.DEFAULT_BUDGET);
+            long spillsBefore = db.getSpills();
+            List<String> expected = select(query);
+            assertEquals(spillsBefore, db.getSpills());
+            // Nothing fits in memory, every intermediate row goes to the disk
+            db.setMemoryBudget(0);
+            List<String> spilled = select(query);
+            assertTrue(db.getSpills() > spillsBefore);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, spilled);
+        }
+        assertEquals(4 * 3 * 3, select(queries[0]).size());
+        assertEquals(4 * 2 * 3, select(queries[1]).size());
+        assertEquals(0, countSpillFiles());
+    }
+
+    /**
+     * Run a SELECT and read back the printed rows, without the header. Needs echo and colors turned off
+     */
+    private List<String> select(String sql) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            db.executeSQL(sql);
+        } finally {
+            System.setOut(out);
+        }
+
+        List<String> rows = new ArrayList<>();
+        String[] lines = captured.toString().split("\\r?\\n");
+        for (int i = 1; i < lines.length; i++) {
+            if (!lines[i].isEmpty()) {
+                rows.add(lines[i]);
+            }
+        }
+        return rows;
+    }
+
+    private int countSpillFiles() {
+        File[] files = spillDirectory.listFiles();
+        return files == null ? 0 : files.length;
+    }
+}
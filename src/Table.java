@@ -5,42 +5,139 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Predicate;
 
 public class Table {
     private final String[] columns;
-    private final List<String[]> rows;
+    // The methods of the table are synchronized, as compact() runs on the compactor thread.
+    // Iterators of getRows() read without the lock : compact() and truncate() replace the list and the tombstones
+    // instead of modifying them, so an iterator keeps a consistent state. insert() and the deletes do modify them
+    // in place, so iterating while another thread writes is not safe : SimpleDB does both only while holding
+    // the database lock, which the compactor takes too.
+    private List<String[]> rows;
+    // Deleted rows are only marked here, and removed from the list by compact()
+    private BitSet tombstones;
+    private int deletedCount;
+    // Position in rows of each live row, built on demand by get() and dropped on every change
+    private int[] liveIndex;
 
     public Table(String[] columns) {
         this.columns = columns;
         rows = new ArrayList<>();
+        tombstones = new BitSet();
+        deletedCount = 0;
     }
 
     public String[] getColumns() {
         return columns;
     }
 
+    /**
+     * The view is not RandomAccess : after deletions, the first get() costs a pass over the table,
+     * and so does the first one after each change. Prefer iterating.
+     * An iterator keeps going over the rows it started with, even if the table is compacted or truncated meanwhile,
+     * but it must not be used while another thread inserts or deletes rows.
+     *
+     * @return a read-only view of the rows that are not deleted
+     */
     public List<String[]> getRows() {
-        return rows;
+        return new AbstractList<>() {
+            @Override
+            public String[] get(int index) {
+                synchronized (Table.this) {
+                    if (index < 0 || index >= size()) {
+                        throw new IndexOutOfBoundsException(index);
+                    }
+                    if (deletedCount == 0) {
+                        return rows.get(index);
+                    }
+                    if (liveIndex == null) {
+                        liveIndex = new int[rows.size() - deletedCount];
+                        int j = 0;
+                        for (int i = tombstones.nextClearBit(0); i < rows.size(); i = tombstones.nextClearBit(i + 1)) {
+                            liveIndex[j++] = i;
+                        }
+                    }
+                    return rows.get(liveIndex[index]);
+                }
+            }
+
+            @Override
+            public int size() {
+                synchronized (Table.this) {
+                    return rows.size() - deletedCount;
+                }
+            }
+
+            @Override
+            public Iterator<String[]> iterator() {
+                List<String[]> iteratedRows;
+                BitSet iteratedTombstones;
+                synchronized (Table.this) {
+                    iteratedRows = rows;
+                    iteratedTombstones = tombstones;
+                }
+                return new Iterator<>() {
+                    private int next = iteratedTombstones.nextClearBit(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < iteratedRows.size();
+                    }
+
+                    @Override
+                    public String[] next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        String[] row = iteratedRows.get(next);
+                        next = iteratedTombstones.nextClearBit(next + 1);
+                        return row;
+                    }
+                };
+            }
+        };
     }
 
-    public boolean insert(String[] values) {
+    public synchronized int getDeletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * @return the part of the stored rows that are deleted, between 0 and 1
+     */
+    public synchronized double getTombstoneRatio() {
+        return rows.isEmpty() ? 0 : (double) deletedCount / rows.size();
+    }
+
+    public synchronized boolean insert(String[] values) {
         if (values.length != columns.length) {
             throw new IllegalArgumentException("Invalid number of values");
         }
         rows.add(values);
+        liveIndex = null;
         return true;
     }
 
-    public boolean update(List<String[]> rowsToUpdate, String[] columnsToUpdate, String[] valuesNew){
+    public synchronized boolean update(Iterable<String[]> rowsToUpdate, String[] columnsToUpdate, String[] valuesNew){
         boolean updated = false;
-        for (String[] row : rows) {
-            if (rowsToUpdate.stream().anyMatch(c -> equalsRow(row, c))){
-                for (int i = 0; i < columnsToUpdate.length; i++) {
-                    row[getColumnIndex(columnsToUpdate[i])] = valuesNew[i];
+        // Go through the rows to update only once, they can be read back from the disk
+        for (String[] rowToUpdate : rowsToUpdate) {
+            for (String[] row : getRows()) {
+                if (equalsRow(row, rowToUpdate)) {
+                    for (int i = 0; i < columnsToUpdate.length; i++) {
+                        row[getColumnIndex(columnsToUpdate[i])] = valuesNew[i];
+                    }
+                    updated = true;
                 }
-                updated = true;
             }
         }
         return updated;
@@ -59,20 +156,73 @@ public class Table {
     }
 
     public boolean deleteRow(String[] row){
-        return rows.removeIf(r -> equalsRow(r, row));
+        return deleteRows(List.<String[]>of(row));
+    }
+
+    /**
+     * Mark the rows equal to the given ones as deleted. The given rows are kept in memory,
+     * use deleteWhere() to delete many rows
+     *
+     * @param rowsToDelete the values of the rows to delete
+     * @return true if at least one row was deleted
+     */
+    public boolean deleteRows(Iterable<String[]> rowsToDelete){
+        Set<List<String>> toDelete = new HashSet<>();
+        for (String[] row : rowsToDelete) {
+            toDelete.add(List.of(row));
+        }
+        return deleteWhere(row -> toDelete.contains(List.of(row))) > 0;
     }
 
-    public boolean deleteRows(List<String[]> rowsToDelete){
-        boolean modifiedRows = false;
-        for (String[] strings : rowsToDelete) {
-            if (deleteRow(strings)){
-                modifiedRows = true;
+    /**
+     * Mark the rows matching the condition as deleted, in a single pass over the table
+     *
+     * @param condition the condition of the rows to delete
+     * @return the number of rows deleted
+     */
+    public synchronized int deleteWhere(Predicate<String[]> condition) {
+        int deleted = 0;
+        for (int i = tombstones.nextClearBit(0); i < rows.size(); i = tombstones.nextClearBit(i + 1)) {
+            if (condition.test(rows.get(i))) {
+                tombstones.set(i);
+                deleted += 1;
             }
         }
-        return modifiedRows;
+        if (deleted > 0) {
+            deletedCount += deleted;
+            liveIndex = null;
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete every row at once, the old rows are left to the garbage collector
+     */
+    public synchronized void truncate() {
+        rows = new ArrayList<>();
+        tombstones = new BitSet();
+        deletedCount = 0;
+        liveIndex = null;
+    }
+
+    /**
+     * Remove the deleted rows from the storage
+     */
+    public synchronized void compact() {
+        if (deletedCount == 0) {
+            return;
+        }
+        List<String[]> liveRows = new ArrayList<>(rows.size() - deletedCount);
+        for (String[] row : getRows()) {
+            liveRows.add(row);
+        }
+        rows = liveRows;
+        tombstones = new BitSet();
+        deletedCount = 0;
+        liveIndex = null;
     }
 
-    public boolean saveToCSV(String fileName) throws Exception {
+    public synchronized boolean saveToCSV(String fileName) throws Exception {
         try (Writer writer = new FileWriter(fileName)) {
             // Create CSV writer
             CSVWriter csvWriter = new CSVWriter(writer,
@@ -84,7 +234,7 @@ public class Table {
             // Write column names
             csvWriter.writeNext(columns);
             // Write rows
-            for (String[] row : rows) {
+            for (String[] row : getRows()) {
                 csvWriter.writeNext(row);
             }
             csvWriter.close();